@@ -1,8 +1,10 @@
 package ru.kentyku.reactortest;
 
 import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.Setter;
 
+@NoArgsConstructor
 @Setter
 @Getter
 public class Cat {
@@ -0,0 +1,47 @@
+package ru.kentyku.reactortest;
+
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cats held by this node. Which node owns a cat is decided by {@link CatShardRouter}, the node itself only
+ * stores what it is given.
+ */
+@RestController
+@RequestMapping("/cats")
+public class CatController {
+
+    private final Map<String, Cat> cats = new ConcurrentHashMap<>();
+
+    @GetMapping
+    public Flux<Cat> all() {
+        return Flux.fromIterable(cats.values());
+    }
+
+    @GetMapping("/{name}")
+    public Mono<Cat> find(@PathVariable String name) {
+        return Mono.justOrEmpty(cats.get(name));
+    }
+
+    @PutMapping
+    public Mono<Cat> save(@RequestBody Cat cat) {
+        cats.put(cat.getName(), cat);
+        return Mono.just(cat);
+    }
+
+    @DeleteMapping("/{name}")
+    public Mono<Void> delete(@PathVariable String name) {
+        cats.remove(name);
+        return Mono.empty();
+    }
+}
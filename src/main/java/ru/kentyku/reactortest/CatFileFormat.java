@@ -0,0 +1,101 @@
+package ru.kentyku.reactortest;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Line formats supported by {@link CatFiles}. Each cat takes exactly one line.
+ */
+public enum CatFileFormat {
+
+    /**
+     * {@code name,age} with an optional header line. Names may contain commas but no line breaks and cannot be
+     * {@code null}.
+     */
+    CSV {
+        @Override
+        String header() {
+            return "name,age";
+        }
+
+        @Override
+        Cat parse(String line) {
+            int comma = line.lastIndexOf(',');
+            if (comma < 0) {
+                throw new IllegalArgumentException("Bad CSV line: " + line);
+            }
+            String age = line.substring(comma + 1).trim();
+            return new Cat(line.substring(0, comma), age.isEmpty() ? null : Integer.valueOf(age));
+        }
+
+        @Override
+        void format(Cat cat, StringBuilder out) {
+            String name = cat.getName();
+            // names are not quoted, so anything that would not read back as the same name is rejected
+            if (name == null || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+                throw new IllegalArgumentException("Cat name cannot be written to CSV: " + name);
+            }
+            out.append(name).append(',');
+            if (cat.getAge() != null) {
+                out.append(cat.getAge());
+            }
+        }
+    },
+
+    /**
+     * One JSON object {@code {"name":"Barsik","age":1}} per line. The name must be a string and the age an
+     * {@code int}, either may be {@code null} or missing.
+     */
+    NDJSON {
+        @Override
+        String header() {
+            return null;
+        }
+
+        @Override
+        Cat parse(String line) {
+            JsonNode node;
+            try {
+                node = READER.readTree(line);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Bad NDJSON line: " + line, e);
+            }
+            JsonNode name = node.path("name");
+            JsonNode age = node.path("age");
+            if (!node.isObject()
+                    || !name.isMissingNode() && !name.isNull() && !name.isTextual()
+                    || !age.isMissingNode() && !age.isNull() && !(age.isIntegralNumber() && age.canConvertToInt())) {
+                throw new IllegalArgumentException("Bad NDJSON line: " + line);
+            }
+            return new Cat(name.isTextual() ? name.textValue() : null, age.isIntegralNumber() ? age.intValue() : null);
+        }
+
+        @Override
+        void format(Cat cat, StringBuilder out) {
+            try {
+                out.append(MAPPER.writeValueAsString(cat));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // a line holds exactly one value, anything after it is an error rather than ignored
+    private static final ObjectReader READER = MAPPER.reader()
+            .with(DeserializationFeature.FAIL_ON_TRAILING_TOKENS);
+
+    /**
+     * First line written on export and skipped on import, or {@code null} if the format has none.
+     */
+    abstract String header();
+
+    abstract Cat parse(String line);
+
+    abstract void format(Cat cat, StringBuilder out);
+}
@@ -0,0 +1,185 @@
+package ru.kentyku.reactortest;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.PooledDataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming import and export of cats.
+ * <p>
+ * Files are read in fixed size chunks and split into lines without collecting the whole file, and exports are
+ * written in batches, so memory use does not depend on the file size. For the same reason a line longer than
+ * {@link #MAX_LINE_LENGTH} bytes fails the import with {@link DataBufferLimitException}. Files whose name ends
+ * with {@code .gz} are read and written gzip-compressed.
+ */
+public final class CatFiles {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int BATCH_SIZE = 1024;
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final DataBufferFactory BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+    private CatFiles() {
+    }
+
+    public static Flux<Cat> read(Path path, CatFileFormat format) {
+        String header = format.header();
+        return lines(readChunks(path))
+                .filter(line -> !line.isEmpty() && !line.equals(header))
+                .map(format::parse);
+    }
+
+    public static Mono<Void> write(Flux<Cat> cats, Path path, CatFileFormat format) {
+        Flux<DataBuffer> buffers = encode(cats, format);
+        if (!isGzip(path)) {
+            return DataBufferUtils.write(buffers, path,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+        return Mono.using(
+                () -> new GZIPOutputStream(Files.newOutputStream(path), CHUNK_SIZE),
+                out -> DataBufferUtils.write(buffers, out)
+                        .map(DataBufferUtils::release)
+                        .then(),
+                CatFiles::close)
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private static Flux<DataBuffer> readChunks(Path path) {
+        if (!isGzip(path)) {
+            return DataBufferUtils.read(path, BUFFER_FACTORY, CHUNK_SIZE);
+        }
+        return DataBufferUtils.readInputStream(
+                () -> new GZIPInputStream(new BufferedInputStream(Files.newInputStream(path), CHUNK_SIZE), CHUNK_SIZE),
+                BUFFER_FACTORY, CHUNK_SIZE)
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private static Flux<String> lines(Flux<DataBuffer> chunks) {
+        return Flux.defer(() -> {
+            LineSplitter splitter = new LineSplitter();
+            return chunks
+                    .concatMapIterable(splitter::split)
+                    .concatWith(Mono.fromSupplier(splitter::remainder))
+                    .doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+        });
+    }
+
+    private static Flux<DataBuffer> encode(Flux<Cat> cats, CatFileFormat format) {
+        String header = format.header();
+        Flux<String> lines = cats
+                .buffer(BATCH_SIZE)
+                .map(batch -> formatBatch(batch, format));
+        if (header != null) {
+            lines = lines.startWith(header + '\n');
+        }
+        return lines.map(text -> BUFFER_FACTORY.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String formatBatch(List<Cat> batch, CatFileFormat format) {
+        StringBuilder out = new StringBuilder(batch.size() * 32);
+        for (Cat cat : batch) {
+            format.format(cat, out);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static boolean isGzip(Path path) {
+        return path.getFileName().toString().endsWith(".gz");
+    }
+
+    private static void close(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Splits chunks on {@code '\n'}. Complete lines are decoded straight from the chunk, only a line that spans
+     * two chunks is copied into the carry-over buffer, which never grows beyond {@link #MAX_LINE_LENGTH}.
+     */
+    private static final class LineSplitter {
+
+        private byte[] carry = new byte[256];
+        private int carryLength;
+
+        List<String> split(DataBuffer chunk) {
+            try {
+                List<String> lines = new ArrayList<>();
+                ByteBuffer bytes = chunk.asByteBuffer();
+                int start = 0;
+                int end = bytes.limit();
+                for (int i = 0; i < end; i++) {
+                    if (bytes.get(i) != '\n') {
+                        continue;
+                    }
+                    if (carryLength > 0) {
+                        carry(bytes, start, i);
+                        lines.add(remainder());
+                    } else {
+                        checkLength(i - start);
+                        int length = i > start && bytes.get(i - 1) == '\r' ? i - start - 1 : i - start;
+                        lines.add(chunk.toString(chunk.readPosition() + start, length, StandardCharsets.UTF_8));
+                    }
+                    start = i + 1;
+                }
+                carry(bytes, start, end);
+                return lines;
+            } finally {
+                DataBufferUtils.release(chunk);
+            }
+        }
+
+        String remainder() {
+            if (carryLength == 0) {
+                return null;
+            }
+            int length = carry[carryLength - 1] == '\r' ? carryLength - 1 : carryLength;
+            String line = new String(carry, 0, length, StandardCharsets.UTF_8);
+            carryLength = 0;
+            return line;
+        }
+
+        private void carry(ByteBuffer bytes, int from, int to) {
+            int length = carryLength + to - from;
+            checkLength(length);
+            if (length > carry.length) {
+                carry = Arrays.copyOf(carry, Math.min(Math.max(carry.length * 2, length), MAX_LINE_LENGTH));
+            }
+            ByteBuffer source = bytes.duplicate();
+            source.position(from);
+            source.get(carry, carryLength, to - from);
+            carryLength = length;
+        }
+
+        private static void checkLength(int length) {
+            if (length > MAX_LINE_LENGTH) {
+                throw new DataBufferLimitException("Line is longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ru.kentyku.reactortest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Consistent-hash ring of nodes. Every node is placed on the ring {@code virtualNodes} times so that keys are
+ * spread evenly and adding or removing a node only moves about {@code 1/n} of the keys.
+ * <p>
+ * Lookups are lock-free and may run concurrently with {@link #add} and {@link #remove}.
+ */
+public class CatRing {
+
+    private final int virtualNodes;
+    private final NavigableMap<Long, String> ring = new ConcurrentSkipListMap<>();
+    private final Set<String> nodes = ConcurrentHashMap.newKeySet();
+
+    public CatRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    public void add(String node) {
+        if (nodes.add(node)) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + '#' + i), node);
+            }
+        }
+    }
+
+    public void remove(String node) {
+        if (nodes.remove(node)) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.remove(hash(node + '#' + i), node);
+            }
+        }
+    }
+
+    public Set<String> nodes() {
+        return Collections.unmodifiableSet(nodes);
+    }
+
+    /**
+     * @return node owning the key, or {@code null} if the ring is empty
+     */
+    public String nodeFor(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer, so that similar keys land far apart on the ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,200 @@
+package ru.kentyku.reactortest;
+
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Routes cat requests to the node that owns the cat name on a {@link CatRing}. Nodes are identified by their
+ * base url, e.g. {@code http://localhost:8080}, and serve {@link CatController}.
+ * <p>
+ * {@link #join} and {@link #leave} move the affected cats between nodes. Membership changes run one at a time,
+ * and requests wait while one runs: a change first lets the requests in flight finish, so a move never overwrites
+ * a save or brings back a deleted cat. This holds for requests made through one router; routers sharing nodes do
+ * not coordinate their moves.
+ */
+public class CatShardRouter {
+
+    static final int REBALANCE_CONCURRENCY = 64;
+
+    private final CatRing ring;
+    private final WebClient webClient;
+    private final Gate gate = new Gate();
+
+    public CatShardRouter(WebClient webClient, int virtualNodes) {
+        this.webClient = webClient;
+        this.ring = new CatRing(virtualNodes);
+    }
+
+    public Set<String> nodes() {
+        return ring.nodes();
+    }
+
+    public Mono<Cat> save(Cat cat) {
+        return gate.request(() -> store(cat));
+    }
+
+    public Mono<Cat> find(String name) {
+        return gate.request(() -> owner(name).flatMap(node -> webClient.get()
+                .uri(node + "/cats/{name}", name)
+                .retrieve()
+                .bodyToMono(Cat.class)));
+    }
+
+    public Mono<Void> delete(String name) {
+        return gate.request(() -> owner(name).flatMap(node -> remove(node, name)));
+    }
+
+    /**
+     * Adds the node to the ring and moves to it the cats it now owns. Joining a node that is already in the ring
+     * does nothing. If moving fails, the join is rolled back like {@link #leave}: the node is taken out of the
+     * ring and the cats that already reached it are handed back, as far as it is still reachable.
+     */
+    public Mono<Void> join(String node) {
+        return gate.change(() -> {
+            if (ring.nodes().contains(node)) {
+                return Mono.empty();
+            }
+            List<String> others = new ArrayList<>(ring.nodes());
+            ring.add(node);
+            return Flux.fromIterable(others)
+                    .flatMap(from -> all(from)
+                            .filter(cat -> node.equals(ring.nodeFor(cat.getName())))
+                            .flatMap(cat -> put(node, cat).then(remove(from, cat.getName())), REBALANCE_CONCURRENCY))
+                    .then()
+                    .onErrorResume(error -> handOver(node)
+                            .onErrorResume(rollbackError -> {
+                                error.addSuppressed(rollbackError);
+                                return Mono.empty();
+                            })
+                            .then(Mono.error(error)));
+        });
+    }
+
+    /**
+     * Removes the node from the ring and hands its cats over to their new owners.
+     */
+    public Mono<Void> leave(String node) {
+        return gate.change(() -> handOver(node));
+    }
+
+    private Mono<Void> handOver(String node) {
+        ring.remove(node);
+        return all(node)
+                .flatMap(cat -> store(cat).then(remove(node, cat.getName())), REBALANCE_CONCURRENCY)
+                .then();
+    }
+
+    private Mono<Cat> store(Cat cat) {
+        return owner(cat.getName()).flatMap(node -> put(node, cat));
+    }
+
+    private Mono<String> owner(String name) {
+        return Mono.fromCallable(() -> ring.nodeFor(name))
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("No nodes to route cat " + name)));
+    }
+
+    private Flux<Cat> all(String node) {
+        return webClient.get()
+                .uri(node + "/cats")
+                .retrieve()
+                .bodyToFlux(Cat.class);
+    }
+
+    private Mono<Cat> put(String node, Cat cat) {
+        return webClient.put()
+                .uri(node + "/cats")
+                .bodyValue(cat)
+                .retrieve()
+                .bodyToMono(Cat.class);
+    }
+
+    private Mono<Void> remove(String node, String name) {
+        return webClient.delete()
+                .uri(node + "/cats/{name}", name)
+                .retrieve()
+                .bodyToMono(Void.class);
+    }
+
+    /**
+     * Lets requests run together, but not together with a membership change. A change waits for the changes
+     * queued before it and then for the requests in flight; requests that arrive meanwhile wait for the change.
+     */
+    private static final class Gate {
+
+        private int requests;
+        // completes when the last queued change has finished, null while no change is queued
+        private MonoProcessor<Void> changes;
+        // completes when the last request in flight has finished, for the change waiting on them
+        private MonoProcessor<Void> drained;
+
+        <T> Mono<T> request(Supplier<Mono<T>> request) {
+            return Mono.defer(() -> {
+                Mono<Void> change;
+                synchronized (this) {
+                    change = changes;
+                    if (change == null) {
+                        requests++;
+                    }
+                }
+                if (change != null) {
+                    return change.then(request(request));
+                }
+                return request.get().doFinally(signal -> requestDone());
+            });
+        }
+
+        Mono<Void> change(Supplier<Mono<Void>> change) {
+            return Mono.defer(() -> {
+                MonoProcessor<Void> done = MonoProcessor.create();
+                Mono<Void> previous;
+                synchronized (this) {
+                    previous = changes == null ? Mono.empty() : changes;
+                    changes = done;
+                }
+                return previous
+                        .then(Mono.defer(this::drain))
+                        .then(Mono.defer(change))
+                        // a change cancelled while it waits still lets the one before it finish first
+                        .doFinally(signal -> previous.subscribe(null, null, () -> changeDone(done)));
+            });
+        }
+
+        private synchronized Mono<Void> drain() {
+            if (requests == 0) {
+                return Mono.empty();
+            }
+            drained = MonoProcessor.create();
+            return drained;
+        }
+
+        private void requestDone() {
+            MonoProcessor<Void> last = null;
+            synchronized (this) {
+                requests--;
+                if (requests == 0 && drained != null) {
+                    last = drained;
+                    drained = null;
+                }
+            }
+            if (last != null) {
+                last.onComplete();
+            }
+        }
+
+        private void changeDone(MonoProcessor<Void> done) {
+            synchronized (this) {
+                if (changes == done) {
+                    changes = null;
+                }
+            }
+            done.onComplete();
+        }
+    }
+}
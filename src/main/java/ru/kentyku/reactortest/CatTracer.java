@@ -0,0 +1,539 @@
+package ru.kentyku.reactortest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.CoreSubscriber;
+import reactor.core.Fuseable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxOperator;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoOperator;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Sampled timing of reactive cat pipelines, a cheap alternative to {@code Hooks.onOperatorDebug}.
+ * <p>
+ * {@link #trace} decides once per subscription whether the pipeline is sampled and, if so, puts its span into
+ * the Reactor {@code Context}. {@link #span} reads the context when subscribed and, only for sampled pipelines,
+ * times the operators above it as a child of the next span below it, so spans nest the same way as the pipeline
+ * and each span's own time is what it does not share with its children. {@link #traceFlux} and {@link #spanFlux}
+ * do the same for {@code Flux}, where a span lasts until the stream completes, fails or is cancelled.
+ * <p>
+ * In unsampled pipelines a span adds no subscriber and passes fusion through, so it costs about as much as an
+ * empty operator: little next to real work, but tens of percent of a chain of a few trivial in-memory maps.
+ * <p>
+ * A trace is exported once all its spans have ended, as an OTLP/JSON line, the same format the OpenTelemetry
+ * collector file exporter writes. The file is written by a background thread from a bounded queue, traces that
+ * do not fit into it are dropped. A trace keeps at most {@link #MAX_SPANS_PER_TRACE} spans besides its root; the
+ * root counts the others in its {@code cat.tracer.dropped_spans} attribute.
+ * <pre>
+ * Mono.just(cat)
+ *         .map(Cat::getAge).transform(tracer.span("age"))
+ *         .map(a -&gt; a / 0).transform(tracer.span("divide"))
+ *         .transform(tracer.trace("checkAge"));
+ * </pre>
+ */
+public class CatTracer implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatTracer.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int STATUS_OK = 1;
+    private static final int STATUS_ERROR = 2;
+    private static final int KIND_INTERNAL = 1;
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final long EXPORT_DELAY_MILLIS = 200;
+    private static final String DROPPED_SPANS_ATTRIBUTE = "cat.tracer.dropped_spans";
+
+    /**
+     * Spans kept per trace besides the root, so that a long traced {@code Flux} with a span per element does not
+     * hold on to all of them until it ends.
+     */
+    static final int MAX_SPANS_PER_TRACE = 1024;
+
+    private final double sampleRate;
+    private final JsonGenerator json;
+    private final BlockingQueue<Trace> finished = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger openTraces = new AtomicInteger();
+    private final Thread exporter = new Thread(this::export, "cat-tracer-export");
+    private volatile boolean closed;
+    private final long epochNanos = System.currentTimeMillis() * 1_000_000L;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * @param sampleRate share of pipelines to trace, from {@code 0} to {@code 1}
+     * @param file       traces are appended to this file
+     */
+    public CatTracer(double sampleRate, Path file) throws IOException {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be between 0 and 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+        this.json = JSON_FACTORY.createGenerator(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE));
+        this.json.setRootValueSeparator(null);
+        exporter.setDaemon(true);
+        exporter.start();
+    }
+
+    /**
+     * Root of a pipeline: samples it and exports its spans once they all have ended. Inside an already traced
+     * pipeline it behaves like {@link #span}.
+     */
+    public <T> Function<Mono<T>, Mono<T>> trace(String name) {
+        return mono -> traced(mono, name, true);
+    }
+
+    /**
+     * Times everything above it in the pipeline, from subscription to the value or error.
+     */
+    public <T> Function<Mono<T>, Mono<T>> span(String name) {
+        return mono -> traced(mono, name, false);
+    }
+
+    /**
+     * {@link #trace} for a {@code Flux}.
+     */
+    public <T> Function<Flux<T>, Flux<T>> traceFlux(String name) {
+        return flux -> traced(flux, name, true);
+    }
+
+    /**
+     * {@link #span} for a {@code Flux}: times everything above it until the stream terminates or is cancelled.
+     */
+    public <T> Function<Flux<T>, Flux<T>> spanFlux(String name) {
+        return flux -> traced(flux, name, false);
+    }
+
+    /**
+     * Writes the remaining traces and closes the file.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            exporter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped.get() > 0) {
+            LOGGER.warn("Dropped {} traces, the export queue was full", dropped.get());
+        }
+    }
+
+    private <T> Mono<T> traced(Mono<T> mono, String name, boolean root) {
+        return mono instanceof Fuseable
+                ? new FuseableTracedMono<>(mono, name, root)
+                : new TracedMono<>(mono, name, root);
+    }
+
+    private <T> Flux<T> traced(Flux<T> flux, String name, boolean root) {
+        return flux instanceof Fuseable
+                ? new FuseableTracedFlux<>(flux, name, root)
+                : new TracedFlux<>(flux, name, root);
+    }
+
+    /**
+     * @return span for a new subscription, or {@code null} if the pipeline is not sampled
+     */
+    private Span start(CoreSubscriber<?> actual, String name, boolean root) {
+        // with no trace open no pipeline is sampled, so most spans can skip the context lookup
+        if (openTraces.get() != 0) {
+            Span parent = actual.currentContext().getOrDefault(Span.class, null);
+            if (parent != null) {
+                return parent.trace.open() ? new Span(parent.trace, name, parent.spanId, now()) : null;
+            }
+        }
+        if (!root || !sample()) {
+            return null;
+        }
+        openTraces.incrementAndGet();
+        return new Span(new Trace(), name, null, now());
+    }
+
+    private boolean sample() {
+        return sampleRate != 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Ends the span and queues its trace for export once this was the last open span of it. A cancel reaches the
+     * spans from the bottom of the pipeline up, so the root may end before its children.
+     */
+    private void end(Span span, Throwable error) {
+        span.end(now(), error);
+        if (!span.trace.close()) {
+            return;
+        }
+        openTraces.decrementAndGet();
+        if (!finished.offer(span.trace)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drains the queue every {@link #EXPORT_DELAY_MILLIS} instead of waking up for each trace.
+     */
+    private void export() {
+        List<Trace> batch = new ArrayList<>(QUEUE_CAPACITY);
+        try {
+            boolean last = false;
+            while (!last) {
+                last = closed;
+                if (!last) {
+                    Thread.sleep(EXPORT_DELAY_MILLIS);
+                }
+                finished.drainTo(batch);
+                for (Trace trace : batch) {
+                    trace.writeOtlp(json);
+                    json.writeRaw('\n');
+                }
+                batch.clear();
+                json.flush();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to export traces", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                json.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close trace file", e);
+            }
+        }
+    }
+
+    private long now() {
+        return epochNanos + System.nanoTime() - startNanos;
+    }
+
+    private static String hex(long id) {
+        String hex = Long.toHexString(id);
+        return hex.length() == 16 ? hex : "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Subscribes the source directly when the pipeline is not sampled, so that untraced pipelines get no extra
+     * subscriber.
+     */
+    private class TracedMono<T> extends MonoOperator<T, T> {
+
+        private final String spanName;
+        private final boolean root;
+
+        TracedMono(Mono<? extends T> source, String spanName, boolean root) {
+            super(source);
+            this.spanName = spanName;
+            this.root = root;
+        }
+
+        @Override
+        public void subscribe(CoreSubscriber<? super T> actual) {
+            Span span = start(actual, spanName, root);
+            source.subscribe(span == null ? actual : new SpanSubscriber<>(CatTracer.this, actual, span, true));
+        }
+    }
+
+    /**
+     * {@link TracedMono} over a fuseable source. Unsampled pipelines hand the source's subscription straight to the
+     * operators below, so marking the span fuseable keeps {@code map} after it fuseable, as without tracing.
+     */
+    private final class FuseableTracedMono<T> extends TracedMono<T> implements Fuseable {
+
+        FuseableTracedMono(Mono<? extends T> source, String spanName, boolean root) {
+            super(source, spanName, root);
+        }
+    }
+
+    /**
+     * {@link TracedMono} for a {@code Flux}.
+     */
+    private class TracedFlux<T> extends FluxOperator<T, T> {
+
+        private final String spanName;
+        private final boolean root;
+
+        TracedFlux(Flux<? extends T> source, String spanName, boolean root) {
+            super(source);
+            this.spanName = spanName;
+            this.root = root;
+        }
+
+        @Override
+        public void subscribe(CoreSubscriber<? super T> actual) {
+            Span span = start(actual, spanName, root);
+            source.subscribe(span == null ? actual : new SpanSubscriber<>(CatTracer.this, actual, span, false));
+        }
+    }
+
+    private final class FuseableTracedFlux<T> extends TracedFlux<T> implements Fuseable {
+
+        FuseableTracedFlux(Flux<? extends T> source, String spanName, boolean root) {
+            super(source, spanName, root);
+        }
+    }
+
+    /**
+     * Times one sampled span and passes every signal through. Operators below a fuseable span expect a
+     * {@link Fuseable.QueueSubscription}, so it is one, but it refuses fusion: a sampled pipeline runs unfused
+     * between the source and the span.
+     */
+    private static final class SpanSubscriber<T> implements CoreSubscriber<T>, Fuseable.QueueSubscription<T> {
+
+        private static final AtomicIntegerFieldUpdater<SpanSubscriber> ENDED =
+                AtomicIntegerFieldUpdater.newUpdater(SpanSubscriber.class, "ended");
+
+        private final CatTracer tracer;
+        private final CoreSubscriber<? super T> actual;
+        private final Span span;
+        private final Context context;
+        // a Mono span ends with its value, a Flux span only when the stream terminates
+        private final boolean mono;
+        private Subscription upstream;
+        private volatile int ended;
+
+        SpanSubscriber(CatTracer tracer, CoreSubscriber<? super T> actual, Span span, boolean mono) {
+            this.tracer = tracer;
+            this.actual = actual;
+            this.span = span;
+            this.context = actual.currentContext().put(Span.class, span);
+            this.mono = mono;
+        }
+
+        @Override
+        public Context currentContext() {
+            return context;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            if (Operators.validate(upstream, subscription)) {
+                upstream = subscription;
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T value) {
+            if (mono) {
+                end(null);
+            }
+            actual.onNext(value);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            end(error);
+            actual.onError(error);
+        }
+
+        @Override
+        public void onComplete() {
+            end(null);
+            actual.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            end(null);
+            upstream.cancel();
+        }
+
+        @Override
+        public int requestFusion(int requestedMode) {
+            return Fuseable.NONE;
+        }
+
+        @Override
+        public T poll() {
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return true;
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        private void end(Throwable error) {
+            // a value or error may race with a cancel from another thread, the span ends with whichever is first
+            if (ENDED.compareAndSet(this, 0, 1)) {
+                tracer.end(span, error);
+            }
+        }
+    }
+
+    private static final class Trace {
+
+        private final long traceIdHigh = ThreadLocalRandom.current().nextLong();
+        private final long traceIdLow = ThreadLocalRandom.current().nextLong();
+        private final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger kept = new AtomicInteger();
+        private final AtomicInteger droppedSpans = new AtomicInteger();
+        // spans started but not ended yet, the root included
+        private final AtomicInteger open = new AtomicInteger(1);
+
+        /**
+         * Keeps an ended span for export, unless {@link #MAX_SPANS_PER_TRACE} are kept already. The root is always
+         * kept and carries the number of dropped spans.
+         */
+        void add(Span span) {
+            if (span.parentSpanId == null
+                    || kept.get() < MAX_SPANS_PER_TRACE && kept.incrementAndGet() <= MAX_SPANS_PER_TRACE) {
+                spans.add(span);
+            } else {
+                droppedSpans.incrementAndGet();
+            }
+        }
+
+        /**
+         * Registers a new span, unless the trace has already ended and been queued for export.
+         */
+        boolean open() {
+            int count;
+            do {
+                count = open.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!open.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        /**
+         * @return {@code true} if the last open span has ended
+         */
+        boolean close() {
+            return open.decrementAndGet() == 0;
+        }
+
+        String traceId() {
+            return hex(traceIdHigh) + hex(traceIdLow);
+        }
+
+        void writeOtlp(JsonGenerator json) throws IOException {
+            json.writeStartObject();
+            json.writeArrayFieldStart("resourceSpans");
+            json.writeStartObject();
+            json.writeObjectFieldStart("resource");
+            json.writeArrayFieldStart("attributes");
+            json.writeStartObject();
+            json.writeStringField("key", "service.name");
+            json.writeObjectFieldStart("value");
+            json.writeStringField("stringValue", "reactortest");
+            json.writeEndObject();
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeArrayFieldStart("scopeSpans");
+            json.writeStartObject();
+            json.writeObjectFieldStart("scope");
+            json.writeStringField("name", CatTracer.class.getName());
+            json.writeEndObject();
+            json.writeArrayFieldStart("spans");
+            String traceId = traceId();
+            for (Span span : spans) {
+                span.writeOtlp(json, traceId);
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+    }
+
+    private static final class Span {
+
+        private final Trace trace;
+        private final long spanId = ThreadLocalRandom.current().nextLong();
+        private final Long parentSpanId;
+        private final String name;
+        private final long start;
+        private long end;
+        // only the message is kept, not the exception with its stack trace and causes
+        private String error;
+
+        Span(Trace trace, String name, Long parentSpanId, long start) {
+            this.trace = trace;
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+            this.start = start;
+        }
+
+        void end(long end, Throwable error) {
+            this.end = end;
+            this.error = error == null ? null : String.valueOf(error);
+            trace.add(this);
+        }
+
+        void writeOtlp(JsonGenerator json, String traceId) throws IOException {
+            json.writeStartObject();
+            json.writeStringField("traceId", traceId);
+            json.writeStringField("spanId", hex(spanId));
+            if (parentSpanId != null) {
+                json.writeStringField("parentSpanId", hex(parentSpanId));
+            }
+            json.writeStringField("name", name);
+            json.writeNumberField("kind", KIND_INTERNAL);
+            json.writeStringField("startTimeUnixNano", Long.toString(start));
+            json.writeStringField("endTimeUnixNano", Long.toString(end));
+            json.writeObjectFieldStart("status");
+            if (error == null) {
+                json.writeNumberField("code", STATUS_OK);
+            } else {
+                json.writeNumberField("code", STATUS_ERROR);
+                json.writeStringField("message", error);
+            }
+            json.writeEndObject();
+            int droppedSpans = trace.droppedSpans.get();
+            if (parentSpanId == null && droppedSpans > 0) {
+                json.writeArrayFieldStart("attributes");
+                json.writeStartObject();
+                json.writeStringField("key", DROPPED_SPANS_ATTRIBUTE);
+                json.writeObjectFieldStart("value");
+                json.writeStringField("intValue", Integer.toString(droppedSpans));
+                json.writeEndObject();
+                json.writeEndObject();
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+        }
+    }
+}
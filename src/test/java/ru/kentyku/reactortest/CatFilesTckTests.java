@@ -0,0 +1,66 @@
+package ru.kentyku.reactortest;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.tck.PublisherVerification;
+import org.reactivestreams.tck.TestEnvironment;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+/**
+ * Reactive Streams TCK for {@link CatFiles#read}.
+ * <p>
+ * Skipped: {@code required_spec317_mustNotSignalOnErrorWhenPendingAboveLongMaxValue}, which needs a publisher of
+ * {@code Integer.MAX_VALUE} elements, the optional {@code optional_spec111_multicast_*} rules, as every
+ * subscriber reads the file into new {@link Cat} instances that do not compare equal, and the {@code untested_*}
+ * rules, which the TCK does not verify at all.
+ */
+public class CatFilesTckTests extends PublisherVerification<Cat> {
+
+    private Path dir;
+
+    public CatFilesTckTests() {
+        super(new TestEnvironment(300));
+    }
+
+    @BeforeClass
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("cat-files-tck");
+    }
+
+    @AfterClass
+    public void deleteDir() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Override
+    public Publisher<Cat> createPublisher(long elements) {
+        Path file = dir.resolve(elements + ".csv");
+        if (!Files.exists(file)) {
+            CatFiles.write(Flux.range(0, (int) elements).map(i -> new Cat("Cat" + i, i)), file, CatFileFormat.CSV)
+                    .block();
+        }
+        return CatFiles.read(file, CatFileFormat.CSV);
+    }
+
+    @Override
+    public Publisher<Cat> createFailedPublisher() {
+        return CatFiles.read(Paths.get("missing", "cats.csv"), CatFileFormat.CSV);
+    }
+
+    @Override
+    public long maxElementsFromPublisher() {
+        return 1024;
+    }
+}
@@ -0,0 +1,191 @@
+package ru.kentyku.reactortest;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CatFilesTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void csvRoundTrip() throws IOException {
+        Path file = dir.resolve("cats.csv");
+
+        CatFiles.write(Flux.just(new Cat("Barsik", 1), new Cat("Vasia", 3), new Cat(" Murka, jr ", null)), file,
+                CatFileFormat.CSV).block();
+
+        assertEquals("name,age\nBarsik,1\nVasia,3\n Murka, jr ,\n",
+                new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        StepVerifier.create(CatFiles.read(file, CatFileFormat.CSV).map(c -> c.getName() + c.getAge()))
+                .expectNext("Barsik1", "Vasia3", " Murka, jr null")
+                .expectComplete()
+                .verify();
+    }
+
+    @Test
+    void ndjsonRoundTrip() {
+        Path file = dir.resolve("cats.ndjson");
+
+        CatFiles.write(Flux.just(new Cat("Barsik", 1), new Cat("Vasia", null)), file, CatFileFormat.NDJSON).block();
+
+        StepVerifier.create(CatFiles.read(file, CatFileFormat.NDJSON).map(c -> c.getName() + c.getAge()))
+                .expectNext("Barsik1", "Vasianull")
+                .expectComplete()
+                .verify();
+    }
+
+    @Test
+    void linesSplitAcrossChunks() {
+        Path file = dir.resolve("cats.csv.gz");
+        int count = CatFiles.CHUNK_SIZE / 4;
+
+        CatFiles.write(cats(count), file, CatFileFormat.CSV).block();
+
+        StepVerifier.create(CatFiles.read(file, CatFileFormat.CSV).map(Cat::getAge).reduce(0L, (sum, age) -> sum + age))
+                .expectNext((long) count * (count - 1) / 2)
+                .expectComplete()
+                .verify();
+    }
+
+    @Test
+    void csvRejectsNamesThatDoNotReadBack() {
+        for (Cat cat : new Cat[]{new Cat(null, 1), new Cat("Bar\nsik", 1), new Cat("Bar\rsik", 1)}) {
+            StepVerifier.create(CatFiles.write(Flux.just(cat), dir.resolve("cats.csv"), CatFileFormat.CSV))
+                    .expectError(IllegalArgumentException.class)
+                    .verify();
+        }
+    }
+
+    @Test
+    void ndjsonKeepsNamesThatCsvRejects() {
+        Path file = dir.resolve("cats.ndjson");
+
+        CatFiles.write(Flux.just(new Cat(null, 1), new Cat("Bar\nsik", 2)), file, CatFileFormat.NDJSON).block();
+
+        StepVerifier.create(CatFiles.read(file, CatFileFormat.NDJSON).map(c -> c.getName() + c.getAge()))
+                .expectNext("null1", "Bar\nsik2")
+                .expectComplete()
+                .verify();
+    }
+
+    @Test
+    void badLineFailsImport() throws IOException {
+        Path file = dir.resolve("cats.csv");
+        Files.write(file, "Barsik,1\nVasia\n".getBytes(StandardCharsets.UTF_8));
+
+        StepVerifier.create(CatFiles.read(file, CatFileFormat.CSV))
+                .expectNextCount(1)
+                .expectError(IllegalArgumentException.class)
+                .verify();
+    }
+
+    @Test
+    void badNdjsonLineFailsImport() throws IOException {
+        String[] badLines = {
+                "42",
+                "[]",
+                "{\"name\":\"Vasia\",\"age\":1} junk",
+                "{\"name\":\"Vasia\",\"age\":\"abc\"}",
+                "{\"name\":\"Vasia\",\"age\":1.5}",
+                "{\"name\":\"Vasia\",\"age\":3000000000}",
+                "{\"name\":7,\"age\":1}",
+                "{\"name\":\"Vasia\""
+        };
+        Path file = dir.resolve("cats.ndjson");
+        for (String badLine : badLines) {
+            String text = "{\"name\":\"Barsik\",\"age\":null}\n" + badLine + "\n";
+            Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+
+            StepVerifier.create(CatFiles.read(file, CatFileFormat.NDJSON))
+                    .expectNextCount(1)
+                    .expectError(IllegalArgumentException.class)
+                    .verify();
+        }
+    }
+
+    @Test
+    void tooLongLineFailsImport() throws IOException {
+        Path file = dir.resolve("cats.csv");
+        char[] name = new char[CatFiles.MAX_LINE_LENGTH];
+        Arrays.fill(name, 'a');
+        // the long line has no line break, so it only ends with the file
+        Files.write(file, ("Barsik,1\n" + new String(name) + ",2").getBytes(StandardCharsets.UTF_8));
+
+        StepVerifier.create(CatFiles.read(file, CatFileFormat.CSV))
+                .expectNextCount(1)
+                .expectError(DataBufferLimitException.class)
+                .verify();
+    }
+
+    @Test
+    void longestLineIsImported() throws IOException {
+        Path file = dir.resolve("cats.csv");
+        char[] name = new char[CatFiles.MAX_LINE_LENGTH - 3];
+        Arrays.fill(name, 'a');
+        Files.write(file, ("Barsik,1\n" + new String(name) + ",2\r\n").getBytes(StandardCharsets.UTF_8));
+
+        StepVerifier.create(CatFiles.read(file, CatFileFormat.CSV).map(cat -> cat.getName().length() + cat.getAge()))
+                .expectNext(7, CatFiles.MAX_LINE_LENGTH - 1)
+                .expectComplete()
+                .verify();
+    }
+
+    /**
+     * Prints export and import MB/s for a million cats in every format, with and without gzip. Runs only with
+     * {@code -Pbenchmark}.
+     */
+    @Test
+    @Tag("benchmark")
+    void throughput() {
+        int count = 1_000_000;
+        for (CatFileFormat format : CatFileFormat.values()) {
+            for (String suffix : new String[]{"", ".gz"}) {
+                Path file = dir.resolve("bench." + format.name().toLowerCase() + suffix);
+
+                long start = System.nanoTime();
+                CatFiles.write(cats(count), file, format).block();
+                long written = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                Long read = CatFiles.read(file, format).count().block();
+                long readTime = System.nanoTime() - start;
+
+                assertEquals(count, read.longValue());
+                // MB/s is measured against the uncompressed size so that plain and gzip runs are comparable
+                long bytes = rawSize(format, count);
+                System.out.printf("%s%s export %.1f MB/s, import %.1f MB/s%n", format, suffix,
+                        mbPerSecond(bytes, written), mbPerSecond(bytes, readTime));
+            }
+        }
+    }
+
+    private static long rawSize(CatFileFormat format, int count) {
+        StringBuilder out = new StringBuilder();
+        return cats(count).map(c -> {
+            out.setLength(0);
+            format.format(c, out);
+            return (long) out.length() + 1;
+        }).reduce(0L, Long::sum).block();
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1_000_000_000.0);
+    }
+
+    private static Flux<Cat> cats(int count) {
+        return Flux.range(0, count).map(i -> new Cat("Cat" + i, i));
+    }
+}
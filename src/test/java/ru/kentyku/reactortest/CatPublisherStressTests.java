@@ -0,0 +1,171 @@
+package ru.kentyku.reactortest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Mono;
+import reactor.test.util.RaceTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Races {@code request(n)} and {@code cancel()} from two threads against our publishers, many times over.
+ */
+class CatPublisherStressTests {
+
+    private static final int ROUNDS = 1000;
+
+    @TempDir
+    Path dir;
+
+    private final Queue<Throwable> dropped = new ConcurrentLinkedQueue<>();
+
+    @BeforeEach
+    void catchDroppedErrors() {
+        Hooks.onErrorDropped(dropped::add);
+    }
+
+    @AfterEach
+    void resetHooks() {
+        Hooks.resetOnErrorDropped();
+        assertTrue(dropped.isEmpty(), "Dropped errors: " + dropped);
+    }
+
+    @Test
+    void concurrentRequestsForFileAddUp() throws InterruptedException {
+        Path file = dir.resolve("cats.csv");
+        CatFiles.write(Flux.range(0, 100).map(i -> new Cat("Cat" + i, i)), file, CatFileFormat.CSV).block();
+
+        for (int round = 0; round < ROUNDS / 10; round++) {
+            CountingSubscriber<Cat> subscriber = new CountingSubscriber<>();
+            CatFiles.read(file, CatFileFormat.CSV).subscribe(subscriber);
+
+            RaceTestUtils.race(() -> subscriber.request(3), () -> subscriber.request(4));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (subscriber.values.get() < 7 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(2);
+            subscriber.cancel();
+            assertEquals(7, subscriber.values.get());
+            assertNull(subscriber.error);
+        }
+    }
+
+    @Test
+    void requestRacesCancelForFile() {
+        Path file = dir.resolve("cats.csv");
+        CatFiles.write(Flux.range(0, 1000).map(i -> new Cat("Cat" + i, i)), file, CatFileFormat.CSV).block();
+
+        for (int round = 0; round < ROUNDS / 10; round++) {
+            CountingSubscriber<Cat> subscriber = new CountingSubscriber<>();
+            CatFiles.read(file, CatFileFormat.CSV).subscribe(subscriber);
+
+            RaceTestUtils.race(() -> subscriber.request(Long.MAX_VALUE), subscriber::cancel);
+
+            assertNull(subscriber.error);
+            assertTrue(subscriber.values.get() <= 1000);
+        }
+    }
+
+    @Test
+    void valueRacesCancelForTracedMono() throws IOException {
+        Path file = dir.resolve("traces.json");
+        try (CatTracer tracer = new CatTracer(1, file)) {
+            for (int round = 0; round < ROUNDS; round++) {
+                CountingSubscriber<Integer> subscriber = new CountingSubscriber<>();
+                Mono.just(round)
+                        .transform(tracer.span("just"))
+                        .transform(tracer.trace("race"))
+                        .subscribe(subscriber);
+
+                RaceTestUtils.race(() -> subscriber.request(1), subscriber::cancel);
+
+                assertNull(subscriber.error);
+                assertTrue(subscriber.values.get() <= 1);
+            }
+        }
+
+        assertEachTraceExportedOnce(file);
+    }
+
+    @Test
+    void completeRacesCancelForTracedFlux() throws IOException {
+        Path file = dir.resolve("traces.json");
+        try (CatTracer tracer = new CatTracer(1, file)) {
+            for (int round = 0; round < ROUNDS; round++) {
+                CountingSubscriber<Integer> subscriber = new CountingSubscriber<>();
+                Flux.range(round, 2)
+                        .concatMap(i -> Mono.just(i).transform(tracer.span("just")))
+                        .transform(tracer.spanFlux("range"))
+                        .transform(tracer.traceFlux("race"))
+                        .subscribe(subscriber);
+
+                RaceTestUtils.race(() -> subscriber.request(Long.MAX_VALUE), subscriber::cancel);
+
+                assertNull(subscriber.error);
+                assertTrue(subscriber.values.get() <= 2);
+            }
+        }
+
+        assertEachTraceExportedOnce(file);
+    }
+
+    /**
+     * Every round must export exactly one trace, and no span in it twice.
+     */
+    private static void assertEachTraceExportedOnce(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(ROUNDS, lines.size());
+        Set<String> traceIds = new HashSet<>();
+        ObjectMapper mapper = new ObjectMapper();
+        for (String line : lines) {
+            JsonNode spans = mapper.readTree(line).at("/resourceSpans/0/scopeSpans/0/spans");
+            assertTrue(traceIds.add(spans.get(0).get("traceId").asText()), "Trace exported twice: " + line);
+            Set<String> spanIds = new HashSet<>();
+            spans.forEach(span -> assertTrue(spanIds.add(span.get("spanId").asText()), "Span ended twice: " + line));
+        }
+    }
+
+    private static final class CountingSubscriber<T> extends BaseSubscriber<T> {
+
+        private final AtomicInteger values = new AtomicInteger();
+        private volatile Throwable error;
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            // demand comes from the racing threads
+        }
+
+        @Override
+        protected void hookOnNext(T value) {
+            values.incrementAndGet();
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            error = throwable;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ru.kentyku.reactortest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CatRingTests {
+
+    private static final int NODES = 4;
+    private static final int VIRTUAL_NODES = 160;
+    private static final int KEYS = 100_000;
+
+    @Test
+    void ringSpreadsKeysEvenly() {
+        CatRing ring = new CatRing(VIRTUAL_NODES);
+        for (int node = 0; node < NODES; node++) {
+            ring.add("node" + node);
+        }
+
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(ring.nodeFor("Cat" + i), 1, Integer::sum);
+        }
+
+        assertEquals(NODES, owned.size());
+        owned.values().forEach(count ->
+                assertTrue(Math.abs(count - KEYS / NODES) < KEYS / NODES / 5, "Unbalanced ring: " + owned));
+    }
+
+    @Test
+    void joiningNodeTakesKeysOnlyFromOthers() {
+        CatRing ring = new CatRing(VIRTUAL_NODES);
+        for (int node = 0; node < NODES - 1; node++) {
+            ring.add("node" + node);
+        }
+        String[] before = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            before[i] = ring.nodeFor("Cat" + i);
+        }
+
+        String joined = "node" + (NODES - 1);
+        ring.add(joined);
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String after = ring.nodeFor("Cat" + i);
+            if (!after.equals(before[i])) {
+                assertEquals(joined, after);
+                moved++;
+            }
+        }
+        assertTrue(moved < KEYS / NODES * 6 / 5, "Too many keys moved: " + moved);
+    }
+
+    @Test
+    void removingNodeGivesBackOnlyItsKeys() {
+        CatRing ring = new CatRing(VIRTUAL_NODES);
+        for (int node = 0; node < NODES; node++) {
+            ring.add("node" + node);
+        }
+        String[] before = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            before[i] = ring.nodeFor("Cat" + i);
+        }
+
+        ring.remove("node0");
+
+        for (int i = 0; i < KEYS; i++) {
+            if (!"node0".equals(before[i])) {
+                assertEquals(before[i], ring.nodeFor("Cat" + i));
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package ru.kentyku.reactortest;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs several application contexts on random localhost ports and shards cats over them.
+ * <p>
+ * All nodes share one JVM and the cores of one host, so adding nodes here cannot raise throughput beyond what
+ * those cores give; the numbers show routing cost and how it changes with the node count, not horizontal
+ * scaling across machines.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CatShardingTests {
+
+    private static final int NODES = 4;
+    private static final int VIRTUAL_NODES = 160;
+
+    private final List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+    private final List<String> urls = new ArrayList<>();
+    private final WebClient webClient = WebClient.create();
+
+    @BeforeAll
+    void startNodes() {
+        for (int i = 0; i < NODES; i++) {
+            ConfigurableApplicationContext context = new SpringApplicationBuilder(ReactorTestApplication.class)
+                    .properties("server.port=0", "spring.main.banner-mode=off")
+                    .run();
+            contexts.add(context);
+            urls.add("http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort());
+        }
+    }
+
+    @AfterAll
+    void stopNodes() {
+        contexts.forEach(ConfigurableApplicationContext::close);
+    }
+
+    @Test
+    void routesAndRebalances() {
+        CatShardRouter router = new CatShardRouter(webClient, VIRTUAL_NODES);
+        router.join(urls.get(0)).block();
+        int count = 500;
+        Flux.range(0, count).flatMap(i -> router.save(new Cat("Murka" + i, i))).blockLast();
+
+        for (String url : urls.subList(1, NODES)) {
+            router.join(url).block();
+        }
+        assertAllFound(router, count);
+        assertEquals(count, urls.stream().mapToLong(this::countOwnedOn).sum());
+
+        router.leave(urls.get(0)).block();
+        assertAllFound(router, count);
+        assertEquals(0, countOwnedOn(urls.get(0)));
+
+        Flux.range(0, count).flatMap(i -> router.delete("Murka" + i)).blockLast();
+    }
+
+    @Test
+    void joiningTwiceKeepsCats() {
+        CatShardRouter router = new CatShardRouter(webClient, VIRTUAL_NODES);
+        urls.subList(0, 2).forEach(url -> router.join(url).block());
+        int count = 200;
+        Flux.range(0, count).flatMap(i -> router.save(new Cat("Murka" + i, i))).blockLast();
+
+        router.join(urls.get(0)).block();
+        router.join(urls.get(1)).block();
+
+        assertAllFound(router, count);
+        Flux.range(0, count).flatMap(i -> router.delete("Murka" + i)).blockLast();
+    }
+
+    @Test
+    void failedJoinIsRolledBack() {
+        CatShardRouter router = new CatShardRouter(webClient, VIRTUAL_NODES);
+        urls.subList(0, 2).forEach(url -> router.join(url).block());
+        int count = 200;
+        Flux.range(0, count).flatMap(i -> router.save(new Cat("Murka" + i, i))).blockLast();
+
+        // nothing listens on port 1
+        String unreachable = "http://localhost:1";
+        StepVerifier.create(router.join(unreachable))
+                .expectError()
+                .verify();
+
+        assertEquals(new HashSet<>(urls.subList(0, 2)), router.nodes());
+        assertAllFound(router, count);
+        Flux.range(0, count).flatMap(i -> router.delete("Murka" + i)).blockLast();
+    }
+
+    @Test
+    void requestsDuringJoinsAreKept() {
+        CatShardRouter router = new CatShardRouter(webClient, VIRTUAL_NODES);
+        router.join(urls.get(0)).block();
+        int count = 300;
+        Flux.range(0, count).flatMap(i -> router.save(new Cat("Murka" + i, i))).blockLast();
+
+        // the same node twice and another one, while every fifth cat is deleted and the others get a new age
+        Flux.merge(
+                router.join(urls.get(1)),
+                router.join(urls.get(1)),
+                router.join(urls.get(2)),
+                Flux.range(0, count).flatMap(i -> i % 5 == 0
+                        ? router.delete("Murka" + i)
+                        : router.save(new Cat("Murka" + i, i + count)).then()))
+                .blockLast();
+
+        assertEquals(new HashSet<>(urls.subList(0, 3)), router.nodes());
+        StepVerifier.create(Flux.range(0, count).flatMap(i -> router.find("Murka" + i)))
+                .recordWith(ArrayList::new)
+                .thenConsumeWhile(cat -> true)
+                .consumeRecordedWith(cats -> {
+                    assertEquals(count - count / 5, cats.size());
+                    cats.forEach(cat -> assertEquals("Murka" + (cat.getAge() - count), cat.getName()));
+                })
+                .expectComplete()
+                .verify();
+        assertEquals(count - count / 5, urls.stream().mapToLong(this::countOwnedOn).sum());
+
+        Flux.range(0, count).flatMap(i -> router.delete("Murka" + i)).blockLast();
+    }
+
+    /**
+     * Prints saves/s for one to four nodes. Every pass is warmed up first and the node counts are measured in
+     * ascending and then descending order, keeping the best result of each, so that JIT warm-up does not favour
+     * the later counts. Runs only with {@code -Pbenchmark}.
+     */
+    @Test
+    @Tag("benchmark")
+    void throughputByNodeCount() {
+        int requests = 2_000;
+        double[] best = new double[NODES + 1];
+        for (int pass = 0; pass < 3; pass++) {
+            for (int step = 0; step < NODES; step++) {
+                int nodes = pass % 2 == 0 ? step + 1 : NODES - step;
+                double savesPerSecond = saves(nodes, requests);
+                // pass 0 only warms up
+                if (pass > 0) {
+                    best[nodes] = Math.max(best[nodes], savesPerSecond);
+                }
+            }
+        }
+        for (int nodes = 1; nodes <= NODES; nodes++) {
+            System.out.printf("%d node(s): %.0f saves/s%n", nodes, best[nodes]);
+        }
+
+        CatShardRouter router = new CatShardRouter(webClient, VIRTUAL_NODES);
+        urls.forEach(url -> router.join(url).block());
+        Flux.range(0, requests).flatMap(i -> router.delete("Bench" + i), 256).blockLast();
+    }
+
+    private double saves(int nodes, int requests) {
+        CatShardRouter router = new CatShardRouter(webClient, VIRTUAL_NODES);
+        urls.subList(0, nodes).forEach(url -> router.join(url).block());
+
+        long start = System.nanoTime();
+        Flux.range(0, requests)
+                .flatMap(i -> router.save(new Cat("Bench" + i, i)), 256)
+                .blockLast();
+        return requests / ((System.nanoTime() - start) / 1_000_000_000.0);
+    }
+
+    private void assertAllFound(CatShardRouter router, int count) {
+        StepVerifier.create(Flux.range(0, count).flatMap(i -> router.find("Murka" + i)).count())
+                .expectNext((long) count)
+                .expectComplete()
+                .verify();
+    }
+
+    private long countOwnedOn(String url) {
+        return webClient.get().uri(url + "/cats").retrieve().bodyToFlux(Cat.class)
+                .filter(cat -> cat.getName().startsWith("Murka"))
+                .count()
+                .block();
+    }
+}
@@ -0,0 +1,63 @@
+package ru.kentyku.reactortest;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.tck.PublisherVerification;
+import org.reactivestreams.tck.TestEnvironment;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reactive Streams TCK for pipelines traced by {@link CatTracer}. Every pipeline is sampled, so the timed
+ * operators are always in place. Each element comes from a traced inner {@link Mono} inside a traced
+ * {@link Flux}, so the multi-element rules run against both operators.
+ * <p>
+ * Skipped: {@code required_spec317_mustNotSignalOnErrorWhenPendingAboveLongMaxValue}, which needs a publisher of
+ * {@code Integer.MAX_VALUE} elements, and the {@code untested_*} rules, which the TCK does not verify at all.
+ */
+public class CatTracerTckTests extends PublisherVerification<Integer> {
+
+    private Path file;
+    private CatTracer tracer;
+
+    public CatTracerTckTests() {
+        super(new TestEnvironment());
+    }
+
+    @BeforeClass
+    public void createTracer() throws IOException {
+        file = Files.createTempFile("cat-tracer-tck", ".json");
+        tracer = new CatTracer(1, file);
+    }
+
+    @AfterClass
+    public void closeTracer() throws IOException {
+        tracer.close();
+        Files.delete(file);
+    }
+
+    @Override
+    public Publisher<Integer> createPublisher(long elements) {
+        return Flux.range(0, (int) elements)
+                .concatMap(i -> Mono.just(i).transform(tracer.span("just")))
+                .transform(tracer.spanFlux("range"))
+                .transform(tracer.traceFlux("tck"));
+    }
+
+    @Override
+    public Publisher<Integer> createFailedPublisher() {
+        return Flux.<Integer>error(new RuntimeException("Flux failed"))
+                .transform(tracer.spanFlux("error"))
+                .transform(tracer.traceFlux("tck"));
+    }
+
+    @Override
+    public long maxElementsFromPublisher() {
+        return 1024;
+    }
+}
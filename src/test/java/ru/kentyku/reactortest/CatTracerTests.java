@@ -0,0 +1,301 @@
+package ru.kentyku.reactortest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Fuseable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CatTracerTests {
+
+    private static final double OVERHEAD_BUDGET_PERCENT = 5;
+    private static final int BENCHMARK_BATCH = 50;
+    private static final int BENCHMARK_ROUNDS = 100;
+    // every tenth cat has a negative age and is filtered out
+    private static final int BENCHMARK_FOUND = BENCHMARK_BATCH - BENCHMARK_BATCH / 10;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void sampledPipelineExportsSpans() throws IOException {
+        Path file = dir.resolve("traces.json");
+        try (CatTracer tracer = new CatTracer(1, file)) {
+            Mono<Integer> resultMono = Mono.just(new Cat("Barsik", 7))
+                    .map(Cat::getAge).transform(tracer.span("age"))
+                    .map(n -> n / 0).transform(tracer.span("divide"))
+                    .transform(tracer.trace("noCatchError"));
+
+            StepVerifier.create(resultMono)
+                    .expectError(ArithmeticException.class)
+                    .verify();
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(1, lines.size());
+        JsonNode spans = spans(lines.get(0));
+        assertEquals(3, spans.size());
+        assertEquals("age", spans.get(0).get("name").asText());
+        assertEquals(1, spans.get(0).at("/status/code").asInt());
+        assertEquals("divide", spans.get(1).get("name").asText());
+        assertEquals(2, spans.get(1).at("/status/code").asInt());
+        assertEquals("noCatchError", spans.get(2).get("name").asText());
+        assertEquals(spans.get(1).get("spanId"), spans.get(0).get("parentSpanId"));
+        assertEquals(spans.get(2).get("spanId"), spans.get(1).get("parentSpanId"));
+        assertTrue(spans.get(2).path("parentSpanId").isMissingNode());
+        assertTrue(spans.get(0).get("endTimeUnixNano").asLong() >= spans.get(0).get("startTimeUnixNano").asLong());
+    }
+
+    @Test
+    void contextReachesInnerPipelines() throws IOException {
+        Path file = dir.resolve("traces.json");
+        try (CatTracer tracer = new CatTracer(1, file)) {
+            Mono<Integer> resultMono = Mono.just(new Cat("Barsik", 1))
+                    .flatMap(c -> Mono.just(c.getAge()).transform(tracer.span("inner")))
+                    .transform(tracer.trace("checkFlatMap"));
+
+            StepVerifier.create(resultMono)
+                    .expectNext(1)
+                    .expectComplete()
+                    .verify();
+        }
+
+        JsonNode spans = spans(Files.readAllLines(file).get(0));
+        assertEquals("inner", spans.get(0).get("name").asText());
+    }
+
+    @Test
+    void fluxSpansNestInnerMonos() throws IOException {
+        Path file = dir.resolve("traces.json");
+        try (CatTracer tracer = new CatTracer(1, file)) {
+            Flux<String> names = Flux.range(0, 3)
+                    .concatMap(i -> Mono.just(new Cat("Barsik" + i, i)).transform(tracer.span("cat")))
+                    .transform(tracer.spanFlux("cats"))
+                    .map(Cat::getName)
+                    .transform(tracer.traceFlux("names"));
+
+            StepVerifier.create(names)
+                    .expectNext("Barsik0", "Barsik1", "Barsik2")
+                    .expectComplete()
+                    .verify();
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(1, lines.size());
+        JsonNode spans = spans(lines.get(0));
+        assertEquals(5, spans.size());
+        JsonNode cats = spans.get(3);
+        JsonNode root = spans.get(4);
+        assertEquals("cats", cats.get("name").asText());
+        assertEquals("names", root.get("name").asText());
+        assertEquals(root.get("spanId"), cats.get("parentSpanId"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("cat", spans.get(i).get("name").asText());
+            assertEquals(cats.get("spanId"), spans.get(i).get("parentSpanId"));
+        }
+    }
+
+    @Test
+    void longFluxKeepsLimitedSpans() throws IOException {
+        Path file = dir.resolve("traces.json");
+        int extra = 100;
+        try (CatTracer tracer = new CatTracer(1, file)) {
+            Flux<Integer> numbers = Flux.range(0, CatTracer.MAX_SPANS_PER_TRACE + extra)
+                    .concatMap(i -> Mono.just(i).transform(tracer.span("just")))
+                    .transform(tracer.traceFlux("range"));
+
+            StepVerifier.create(numbers)
+                    .expectNextCount(CatTracer.MAX_SPANS_PER_TRACE + extra)
+                    .expectComplete()
+                    .verify();
+        }
+
+        JsonNode spans = spans(Files.readAllLines(file).get(0));
+        assertEquals(CatTracer.MAX_SPANS_PER_TRACE + 1, spans.size());
+        JsonNode root = spans.get(CatTracer.MAX_SPANS_PER_TRACE);
+        assertEquals("range", root.get("name").asText());
+        assertEquals("cat.tracer.dropped_spans", root.at("/attributes/0/key").asText());
+        assertEquals(extra, root.at("/attributes/0/value/intValue").asInt());
+    }
+
+    @Test
+    void cancelledTraceIsExportedWithAllSpans() throws IOException {
+        Path file = dir.resolve("traces.json");
+        try (CatTracer tracer = new CatTracer(1, file)) {
+            Mono.never()
+                    .transform(tracer.span("never"))
+                    .transform(tracer.trace("cancelled"))
+                    .subscribe()
+                    .dispose();
+        }
+
+        JsonNode spans = spans(Files.readAllLines(file).get(0));
+        assertEquals(2, spans.size());
+    }
+
+    @Test
+    void unsampledPipelineExportsNothing() throws IOException {
+        Path file = dir.resolve("traces.json");
+        try (CatTracer tracer = new CatTracer(0, file)) {
+            StepVerifier.create(Mono.just(1).transform(tracer.span("just")).transform(tracer.trace("root")))
+                    .expectNext(1)
+                    .expectComplete()
+                    .verify();
+        }
+
+        assertEquals(0, Files.size(file));
+    }
+
+    @Test
+    void unsampledSpansKeepFusion() throws IOException {
+        try (CatTracer tracer = new CatTracer(0, dir.resolve("traces.json"))) {
+            Mono<Integer> resultMono = Mono.just(new Cat("Barsik", 7))
+                    .map(Cat::getAge).transform(tracer.span("age"))
+                    .map(n -> n + 3).transform(tracer.trace("add"));
+
+            StepVerifier.create(resultMono)
+                    .expectFusion(Fuseable.SYNC)
+                    .expectNext(10)
+                    .expectComplete()
+                    .verify();
+        }
+    }
+
+    @Test
+    void sampledSpansRefuseFusion() throws IOException {
+        try (CatTracer tracer = new CatTracer(1, dir.resolve("traces.json"))) {
+            Mono<Integer> resultMono = Mono.just(new Cat("Barsik", 7))
+                    .map(Cat::getAge).transform(tracer.span("age"))
+                    .map(n -> n + 3).transform(tracer.trace("add"));
+
+            StepVerifier.create(resultMono)
+                    .expectFusion(Fuseable.ANY, Fuseable.NONE)
+                    .expectNext(10)
+                    .expectComplete()
+                    .verify();
+        }
+    }
+
+    /**
+     * Tracing at 1% sampling must cost no more than {@link #OVERHEAD_BUDGET_PERCENT} of a cat request the way
+     * {@link CatShardRouter} makes it: fetch a cat from a node over HTTP, check it and format it, with a span around
+     * each operator. Plain and traced rounds run in turns, so that JIT and GC pauses hit both sides alike, and the
+     * median rounds are compared.
+     * <p>
+     * Each span is one more operator in the pipeline even when it is not sampled, about as costly as an empty
+     * {@code MonoOperator}: some tens of nanoseconds. On in-memory chains of a few trivial maps, like
+     * noCatchError, that is tens of percent, so the budget holds only for pipelines that do real work.
+     */
+    @Test
+    @Tag("benchmark")
+    void overheadAtOnePercentSampling() throws IOException {
+        ConfigurableApplicationContext node = new SpringApplicationBuilder(ReactorTestApplication.class)
+                .properties("server.port=0", "spring.main.banner-mode=off")
+                .run();
+        try (CatTracer tracer = new CatTracer(0.01, dir.resolve("traces.json"))) {
+            String url = "http://localhost:" + ((WebServerApplicationContext) node).getWebServer().getPort();
+            WebClient webClient = WebClient.create(url);
+            Flux.range(0, BENCHMARK_BATCH)
+                    .flatMap(i -> webClient.put().uri("/cats").bodyValue(new Cat("Barsik" + i, i % 10 - 1))
+                            .retrieve().bodyToMono(Cat.class))
+                    .blockLast();
+            // the sampled path runs too rarely at 1% to get compiled soon, so warm it up with every pipeline sampled
+            try (CatTracer warmUp = new CatTracer(1, dir.resolve("warm-up.json"))) {
+                for (int round = 0; round < 10; round++) {
+                    findTraced(webClient, warmUp);
+                }
+            }
+
+            long[] plain = new long[BENCHMARK_ROUNDS];
+            long[] traced = new long[BENCHMARK_ROUNDS];
+            for (int round = -BENCHMARK_ROUNDS / 2; round < BENCHMARK_ROUNDS; round++) {
+                // the side that runs second in a round may find caches warmer, so the sides take turns
+                long plainNanos;
+                long tracedNanos;
+                if ((round & 1) == 0) {
+                    plainNanos = time(() -> findPlain(webClient));
+                    tracedNanos = time(() -> findTraced(webClient, tracer));
+                } else {
+                    tracedNanos = time(() -> findTraced(webClient, tracer));
+                    plainNanos = time(() -> findPlain(webClient));
+                }
+                // the first rounds only warm up
+                if (round >= 0) {
+                    plain[round] = plainNanos;
+                    traced[round] = tracedNanos;
+                }
+            }
+            Arrays.sort(plain);
+            Arrays.sort(traced);
+            long plainNanos = plain[BENCHMARK_ROUNDS / 2];
+            long tracedNanos = traced[BENCHMARK_ROUNDS / 2];
+            double overhead = (tracedNanos - plainNanos) * 100.0 / plainNanos;
+
+            System.out.printf("plain %.1f us, traced at 1%% %.1f us per request, overhead %.1f%%%n",
+                    plainNanos / 1000.0 / BENCHMARK_BATCH, tracedNanos / 1000.0 / BENCHMARK_BATCH, overhead);
+            assertTrue(overhead < OVERHEAD_BUDGET_PERCENT, "Tracing overhead " + overhead + "%");
+        } finally {
+            node.close();
+        }
+    }
+
+    private static long time(IntSupplier batch) {
+        long start = System.nanoTime();
+        assertEquals(BENCHMARK_FOUND, batch.getAsInt());
+        return System.nanoTime() - start;
+    }
+
+    private static int findPlain(WebClient webClient) {
+        int found = 0;
+        for (int i = 0; i < BENCHMARK_BATCH; i++) {
+            String csv = webClient.get().uri("/cats/{name}", "Barsik" + i).retrieve().bodyToMono(Cat.class)
+                    .filter(cat -> cat.getAge() >= 0)
+                    .map(CatTracerTests::csv)
+                    .block();
+            found += csv == null ? 0 : 1;
+        }
+        return found;
+    }
+
+    private static int findTraced(WebClient webClient, CatTracer tracer) {
+        int found = 0;
+        for (int i = 0; i < BENCHMARK_BATCH; i++) {
+            String csv = webClient.get().uri("/cats/{name}", "Barsik" + i).retrieve().bodyToMono(Cat.class)
+                    .transform(tracer.span("get"))
+                    .filter(cat -> cat.getAge() >= 0).transform(tracer.span("check"))
+                    .map(CatTracerTests::csv).transform(tracer.span("format"))
+                    .transform(tracer.trace("findCat"))
+                    .block();
+            found += csv == null ? 0 : 1;
+        }
+        return found;
+    }
+
+    private static String csv(Cat cat) {
+        StringBuilder out = new StringBuilder();
+        CatFileFormat.CSV.format(cat, out);
+        return out.toString();
+    }
+
+    private static JsonNode spans(String line) throws IOException {
+        return new ObjectMapper().readTree(line).at("/resourceSpans/0/scopeSpans/0/spans");
+    }
+}
@@ -105,7 +105,8 @@ class ReactortestApplicationTests {
 
         StepVerifier.create(name)
                 .expectNext("Barsik")
-                .expectComplete();
+                .expectComplete()
+                .verify();
 
         StepVerifier.create(resultMono)
                 .expectNext("BarsikAfterError")
@@ -154,7 +155,8 @@ class ReactortestApplicationTests {
 
         StepVerifier.create(name)
                 .expectNext("Barsik")
-                .expectComplete();
+                .expectComplete()
+                .verify();
 
         StepVerifier.create(resultMono)
 //                .expectError(RuntimeException.class)
@@ -181,7 +183,8 @@ class ReactortestApplicationTests {
 
         StepVerifier.create(age)
                 .expectNext(7)
-                .expectComplete();
+                .expectComplete()
+                .verify();
 
         StepVerifier.create(resultMono)
                 .expectError(ArithmeticException.class)
@@ -202,7 +205,8 @@ class ReactortestApplicationTests {
 
         StepVerifier.create(age)
                 .expectNext(7)
-                .expectComplete();
+                .expectComplete()
+                .verify();
 
         StepVerifier.create(resultMono)
                 .expectNext(7)
@@ -592,4 +596,20 @@ class ReactortestApplicationTests {
         }
     }
 
+    @Test
+    void checkFlatMapWithVirtualTime() {
+        //то же что и checkFlatMap, но задержки отрабатывают в виртуальном времени, поэтому тест не ждет и не
+        // зависит от того, успеет ли основной поток дойти до конца
+        StepVerifier.withVirtualTime(() -> Mono.just(new Cat("Barsik", 1))
+                .flatMap(c -> Mono.just(c.getAge()).delayElement(Duration.ofMillis(5)))
+                .map(a -> a)
+                .delayElement(Duration.ofMillis(1)))
+                .expectSubscription()
+                .expectNoEvent(Duration.ofMillis(5))
+                .thenAwait(Duration.ofMillis(1))
+                .expectNext(1)
+                .expectComplete()
+                .verify();
+    }
+
 }